@@ -0,0 +1,133 @@
+package KleinianTools;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * A 1-bit raster packed into longs, for monochrome limit sets. Each row
+ * starts on a new long, and within a long the leftmost pixel is the most
+ * significant bit. Pixels are set with an atomic OR, so several threads
+ * can draw at once without locking.
+ */
+public class Bitmap {
+    private static final VarHandle BITS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    int width, height, stride;
+    long[] bits;
+
+    /**
+     * Creates a new, empty bitmap.
+     * @param width Width in px.
+     * @param height Height in px.
+     */
+    public Bitmap(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.stride = (width + 63) >> 6;
+        this.bits = new long[stride * height];
+    }
+
+    /**
+     * Sets a pixel.
+     * @param x X coordinate.
+     * @param y Y coordinate.
+     * @return Whether the pixel wasn't set before.
+     */
+    public boolean set(int x, int y) {
+        int i = y * stride + (x >> 6);
+        long m = Long.MIN_VALUE >>> (x & 63);
+
+        // Most pixels we hit are already set, and a plain read is much cheaper than the OR
+        if (((long) BITS.getOpaque(bits, i) & m) != 0) return false;
+        return ((long) BITS.getAndBitwiseOr(bits, i, m) & m) == 0;
+    }
+
+    /**
+     * Checks whether a pixel is set.
+     * @param x X coordinate.
+     * @param y Y coordinate.
+     * @return Whether the pixel is set.
+     */
+    public boolean get(int x, int y) {
+        return ((long) BITS.getOpaque(bits, y * stride + (x >> 6)) & (Long.MIN_VALUE >>> (x & 63))) != 0;
+    }
+
+    /**
+     * Checks whether every pixel in a rectangle is set.
+     * @param x0 Left edge.
+     * @param y0 Top edge.
+     * @param x1 Right edge (inclusive).
+     * @param y1 Bottom edge (inclusive).
+     * @return Whether all of the pixels are set.
+     */
+    public boolean allSet(int x0, int y0, int x1, int y1) {
+        for (int y = y0; y <= y1; y ++) {
+            for (int k = x0 >> 6; k <= x1 >> 6; k ++) {
+                // Mask of the pixels in this long that are inside the rectangle
+                long m = -1L;
+                if (k == x0 >> 6) m &= -1L >>> (x0 & 63);
+                if (k == x1 >> 6) m &= Long.MIN_VALUE >> (x1 & 63);
+                if (((long) BITS.getOpaque(bits, y * stride + k) & m) != m) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Clears every pixel.
+     */
+    public void clear() {
+        Arrays.fill(bits, 0);
+    }
+
+    /**
+     * Counts the set pixels.
+     * @return Number of set pixels.
+     */
+    public long count() {
+        long n = 0;
+        for (long l : bits) n += Long.bitCount(l);
+        return n;
+    }
+
+    /**
+     * Copies a row out as packed bytes (leftmost pixel in the most significant bit),
+     * as used by 1-bit PNGs.
+     * @param y Row to copy.
+     * @param out Buffer of at least (width + 7) / 8 bytes.
+     */
+    public void row(int y, byte[] out) {
+        int n = (width + 7) >> 3, off = y * stride;
+        for (int k = 0; k < n; k ++) {
+            out[k] = (byte) (bits[off + (k >> 3)] >>> (56 - ((k & 7) << 3)));
+        }
+    }
+
+    /**
+     * Converts the bitmap to a two-color image (which still only takes one bit per pixel).
+     * @param fg Color of set pixels.
+     * @param bg Color of clear pixels.
+     * @return Image of the bitmap.
+     */
+    public BufferedImage toImage(Color fg, Color bg) {
+        IndexColorModel cm = new IndexColorModel(1, 2,
+                new byte[] {(byte) bg.getRed(), (byte) fg.getRed()},
+                new byte[] {(byte) bg.getGreen(), (byte) fg.getGreen()},
+                new byte[] {(byte) bg.getBlue(), (byte) fg.getBlue()});
+        BufferedImage im = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY, cm);
+
+        byte[] data = ((DataBufferByte) im.getRaster().getDataBuffer()).getData();
+        int n = (width + 7) >> 3;
+        byte[] row = new byte[n];
+        for (int y = 0; y < height; y ++) {
+            this.row(y, row);
+            System.arraycopy(row, 0, data, y * n, n);
+        }
+        return im;
+    }
+}
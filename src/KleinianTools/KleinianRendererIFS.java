@@ -2,11 +2,12 @@ package KleinianTools;
 
 import MathUtils.*;
 
-import javax.imageio.ImageIO;
-import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.*;
 
 import static MathUtils.ComplexUtils.*;
 import static MathUtils.MoebiusUtils.*;
@@ -15,17 +16,54 @@ import static MathUtils.MoebiusUtils.*;
  * This class describes a renderer for a general Kleinian limit set
  * using Michael Barnsley's IFS technique.
  */
-public class KleinianRendererIFS {
-    int width, height, hW, hH;
-    float size, scale;
-    Complex cen = ZERO;
+public class KleinianRendererIFS extends Renderer {
+    // Points plotted between checks of the clock and snapshot counter
+    private static final int CHUNK = 1 << 16;
+    // Steps between updates of the adaptive weights, and the least an adaptive weight can shrink to
+    private static final int WINDOW = 1 << 12;
+    private static final float MIN_WEIGHT = 0.1f;
 
-    int pointSz;
+    Complex cen = ZERO;
     Generator gen;
 
-    int w = 1;
-    BufferedImage im;
-    Graphics2D gr;
+    float[] weights = {1, 1, 1, 1};
+    boolean adaptive, markov;
+    WordTable seeds;
+    int burnIn;
+
+    long seed = new SplittableRandom().nextLong();
+    Orbit[] orbits;
+    int count;
+    long total;
+
+    int threads = 1;
+    ExecutorService pool;
+    PointCloudWriter cloud;
+    PointCloudWriter.Sink[] sinks;
+
+    /**
+     * The state of one of the orbits being followed.
+     */
+    private class Orbit {
+        Complex z;
+        int j = -1;
+        SplittableRandom rng;
+
+        // Index among the orbits of all shards, and number of points plotted
+        int id;
+        long done = 0;
+
+        // Current weights, and how often each generator was used and hit a new pixel
+        float[] w = weights.clone();
+        int[] uses = new int[4], hits = new int[4];
+        int steps = 0;
+
+        Orbit(Complex z, SplittableRandom rng, int id) {
+            this.z = z;
+            this.rng = rng;
+            this.id = id;
+        }
+    }
 
     /**
      * Creates a new Kleinian group renderer with given parameters.
@@ -35,95 +73,434 @@ public class KleinianRendererIFS {
      * @param gen Generators for the group.
      */
     public KleinianRendererIFS(int width, int height, float size,  Generator gen) {
-        this.width = width;
-        this.height = height;
-        this.hW = width / 2;
-        this.hH = height / 2;
-
-        this.gen = gen;
-        this.size = size;
-        this.scale = Math.min(this.hW, this.hH) / size;
-
-        im = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        gr = im.createGraphics();
+        this(width, height, size, gen, false);
     }
 
     /**
-     * Sets the current paint color to a given color.
-     * @param r Red value of color.
-     * @param g Green value of color.
-     * @param b Blue value of color.
+     * Creates a new Kleinian group renderer with given parameters.
+     * @param width Width of output image.
+     * @param height Height of output image.
+     * @param size Display size about minor axis.
+     * @param gen Generators for the group.
+     * @param mono Whether to draw into a 1-bit bitmap instead of an RGB image.
      */
-    public void setColor(int r, int g, int b) {
-        this.gr.setColor(new Color(r, g, b));
+    public KleinianRendererIFS(int width, int height, float size, Generator gen, boolean mono) {
+        super(width, height, size, mono);
+        this.gen = gen;
     }
 
     /**
      * Sets the current stroke size.
      * @param i Size in px.
      */
+    @Override
     public void setWeight(int i) {
         this.w = i;
     }
 
     /**
-     * Clears the image and sets its background.
-     * @param r Red value of color.
-     * @param g Green value of color.
-     * @param b Blue value of color.
+     * Sets how likely each generator is to be picked.
+     * @param a Weight of the first generator.
+     * @param b Weight of the second generator.
+     * @param A Weight of the inverse of the first generator.
+     * @param B Weight of the inverse of the second generator.
+     */
+    public void setWeights(float a, float b, float A, float B) {
+        this.weights = new float[] {a, b, A, B};
+        this.orbits = null;
+    }
+
+    /**
+     * Turns adaptive weighting on or off. When on, generators that have recently
+     * been landing on new pixels get picked more often, so sparse (e.g. parabolic)
+     * parts of the limit set fill in as quickly as the rest.
+     * @param adaptive Whether to adapt the weights.
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+        this.orbits = null;
+    }
+
+    /**
+     * Turns Markov selection on or off. When on, a generator is never followed by
+     * its inverse, which would just undo it.
+     * @param markov Whether to skip inverses of the previous generator.
+     */
+    public void setMarkov(boolean markov) {
+        this.markov = markov;
+    }
+
+    /**
+     * Starts an orbit from the fixed point of every reduced word up to a given length,
+     * instead of just the first generator's.
+     * @param len Length of the longest words.
+     * @param burnIn Number of steps to take before plotting each orbit.
+     */
+    public void setSeeds(int len, int burnIn) {
+        this.setSeeds(WordTable.build(gen, len), burnIn);
+    }
+
+    /**
+     * Starts an orbit from the fixed point of every word in a word table
+     * (e.g. one from a RecipeCache), instead of just the first generator's.
+     * @param words Word table built from this renderer's generators.
+     * @param burnIn Number of steps to take before plotting each orbit.
+     */
+    public void setSeeds(WordTable words, int burnIn) {
+        this.seeds = words;
+        this.burnIn = burnIn;
+        this.orbits = null;
+    }
+
+    /**
+     * Seeds the random number generator, for repeatable renders.
+     * @param seed Seed.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+        this.orbits = null;
+    }
+
+    /**
+     * Renders only one shard of the job. Each shard follows its own orbits with
+     * its own stream of random numbers, split in order from the seed, so every
+     * shard must be given the same seed and settings. Adaptive weighting depends
+     * on what else has been drawn, so with it on, shards won't exactly match a
+     * single render.
+     * @param shard Index of the shard to render, or -1 for all of them.
+     * @param shards Number of shards.
+     */
+    @Override
+    public void setShard(int shard, int shards) {
+        super.setShard(shard, shards);
+        this.orbits = null;
+    }
+
+    /**
+     * Sets the number of threads to run orbits on. Each thread follows its own
+     * orbits (so without seeds, there is one orbit per thread).
+     * @param threads Number of threads.
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+        this.orbits = null;
+        if (this.pool != null) {
+            this.pool.shutdown();
+            this.pool = null;
+        }
+    }
+
+    /**
+     * Starts recording every point plotted (after burn-in) to a point cloud file,
+     * name.pts, alongside the image.
+     * @param name Name of file.
+     * @param doubles Whether to store doubles rather than floats.
+     * @param dedup If above 0, only keep one point per cell of a grid with this many
+     *              cells to a pixel side (and only points inside the view).
+     * @return The writer, to be closed with stopRecording once enough points are recorded.
+     */
+    public PointCloudWriter recordPoints(String name, boolean doubles, int dedup) {
+        PointCloudWriter cloud = new PointCloudWriter(new File(name + ".pts"), doubles);
+        if (dedup > 0) {
+            float cell = 1 / (this.scale * dedup);
+            cloud.setDedup(this.cen.x - this.hW / this.scale, this.cen.y - this.hH / this.scale,
+                    cell, this.width * dedup, this.height * dedup);
+        }
+        this.setPointCloud(cloud);
+        return cloud;
+    }
+
+    /**
+     * Records every point plotted (after burn-in) through a point cloud writer,
+     * or stops recording if it is null.
+     * @param cloud Writer to record to.
+     */
+    public void setPointCloud(PointCloudWriter cloud) {
+        this.cloud = cloud;
+        this.sinks = null;
+    }
+
+    /**
+     * Stops recording points and closes the point cloud file. The image can still
+     * be refined afterwards, without anything more being recorded.
      */
-    public void setBG(int r, int g, int b) {
-        this.gr.setBackground(new Color(r, g, b));
-        this.gr.clearRect(0, 0, this.width, this.height);
+    public void stopRecording() {
+        if (this.cloud != null) {
+            this.cloud.close();
+        }
+        this.setPointCloud(null);
     }
 
     /**
      * This private method plots a point onto the image.
      * @param z Point as a complex number.
+     * @return Whether the point landed on a pixel that hadn't been drawn yet.
      */
-    private void markPt(Complex z) {
+    private boolean markPt(Complex z) {
         z = z.sub(this.cen);
         int nX = (int) (z.x * this.scale + this.hW);
         int nY = (int) (z.y * this.scale + this.hH);
 
         if (nX < width && nX > 0 && nY < height && nY > 0) {
-            gr.fillRect(nX, nY, this.w, this.w);
+            return this.plot(nX, nY);
+        }
+        return false;
+    }
+
+    /**
+     * Identifies the job, including the seed and everything that decides the orbits.
+     * @return Hash of the job's settings.
+     */
+    @Override
+    long job() {
+        long h = hashBits(hash(super.job(), gen.gens), this.seed);
+        h = hash(h, this.cen.x, this.cen.y, this.burnIn, this.threads);
+        h = hash(h, this.adaptive ? 1 : 0, this.markov ? 1 : 0, this.seeds == null ? 0 : this.seeds.depth);
+        for (float w : this.weights) h = hash(h, w);
+        return h;
+    }
+
+    /**
+     * Sets up the orbits from their seeds, each with its own random numbers,
+     * and runs each through its burn-in.
+     */
+    private void seed() {
+        List<Complex> starts = new ArrayList<>();
+        for (int i = 0; seeds != null && i < seeds.size(); i ++) {
+            // Parabolic and some other words have their fixed point at infinity
+            Complex z = seeds.words[i].fix();
+            if (Float.isFinite(z.x) && Float.isFinite(z.y)) {
+                starts.add(z);
+            }
+        }
+
+        if (starts.isEmpty()) {
+            for (int t = 0; t < this.threads; t ++) {
+                starts.add(gen.gens[0].fix());
+            }
+        }
+
+        // Each shard has the same starting points, but its own random numbers
+        SplittableRandom master = new SplittableRandom(this.seed);
+        List<Orbit> orbits = new ArrayList<>();
+        int m = starts.size();
+        for (int s = 0; s < this.shards; s ++) {
+            SplittableRandom stream = master.split();
+            for (int i = 0; i < m; i ++) {
+                Orbit o = new Orbit(starts.get(i), stream.split(), s * m + i);
+                if (this.shard < 0 || this.shard == s) {
+                    orbits.add(o);
+                }
+            }
+        }
+        this.orbits = orbits.toArray(new Orbit[0]);
+        this.count = this.shards * m;
+        this.total = 0;
+
+        for (Orbit o : this.orbits) {
+            for (int i = 0; i < burnIn; i ++) {
+                o.j = this.pick(o);
+                o.z = moebiusPt(gen.gens[o.j], o.z);
+            }
+        }
+    }
+
+    /**
+     * Picks the next generator for an orbit by its weights.
+     * @param o Orbit.
+     * @return Index of the generator.
+     */
+    private int pick(Orbit o) {
+        int skip = (markov && o.j >= 0) ? (o.j + 2) % 4 : -1;
+        float total = 0;
+        for (int k = 0; k < 4; k ++) {
+            if (k != skip) total += o.w[k];
+        }
+
+        double r = o.rng.nextDouble() * total;
+        int k = 0;
+        for (; k < 3; k ++) {
+            if (k != skip && (r -= o.w[k]) < 0) break;
+        }
+        return (k == skip) ? k - 1 : k;
+    }
+
+    /**
+     * Reweights an orbit's generators by how often each has landed on a new pixel lately.
+     * @param o Orbit.
+     */
+    private void adapt(Orbit o) {
+        float[] rate = new float[4];
+        float mean = 0;
+        for (int k = 0; k < 4; k ++) {
+            rate[k] = (o.hits[k] + 1f) / (o.uses[k] + 1f);
+            mean += rate[k] / 4;
+        }
+
+        for (int k = 0; k < 4; k ++) {
+            o.w[k] = this.weights[k] * Math.max(MIN_WEIGHT, rate[k] / mean);
+            o.uses[k] = o.hits[k] = 0;
+        }
+    }
+
+    /**
+     * Returns how many points an orbit should have plotted by the time
+     * a given number have been plotted between all of the orbits of all shards.
+     * This doesn't depend on how the points were handed out along the way,
+     * so the shards always agree with a single render.
+     * @param o Orbit.
+     * @param total Number of points plotted between all orbits.
+     * @return Number of points the orbit should have plotted.
+     */
+    private long quota(Orbit o, long total) {
+        return total * (o.id + 1) / this.count - total * o.id / this.count;
+    }
+
+    /**
+     * Runs the orbits on for a given number of points between them (counting
+     * those of other shards), carrying on from wherever the previous call left off.
+     * @param numPts Number of points to plot.
+     */
+    private void iterate(long numPts) {
+        if (this.orbits == null) {
+            this.seed();
+        }
+        long total = this.total += numPts;
+
+        // One sink per thread, however many orbits it runs
+        if (this.cloud != null && (this.sinks == null || this.sinks.length != this.threads)) {
+            this.sinks = new PointCloudWriter.Sink[this.threads];
+        }
+
+        int m = this.orbits.length;
+        if (this.threads == 1 || m == 1) {
+            this.run(total, 0, 1);
+            return;
+        }
+
+        // Deal the orbits out between the threads, and wait for all of them
+        if (this.pool == null) {
+            this.pool = Executors.newFixedThreadPool(this.threads, r -> {
+                Thread t = new Thread(r, "ifs-worker");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int t = 0; t < Math.min(this.threads, m); t ++) {
+            int first = t;
+            tasks.add(() -> {
+                this.run(total, first, this.threads);
+                return null;
+            });
+        }
+
+        try {
+            for (Future<Void> f : this.pool.invokeAll(tasks)) {
+                f.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Runs every step-th orbit from a given one on up to its share of the points.
+     * @param total Number of points to have plotted between all orbits.
+     * @param first Index of the first orbit to run.
+     * @param step Distance between the orbits to run.
+     */
+    private void run(long total, int first, int step) {
+        PointCloudWriter.Sink sink = null;
+        if (this.cloud != null) {
+            if (this.sinks[first] == null) {
+                this.sinks[first] = this.cloud.sink();
+            }
+            sink = this.sinks[first];
+        }
+
+        int m = this.orbits.length;
+        for (int s = first; s < m; s += step) {
+            Orbit o = this.orbits[s];
+
+            long n = this.quota(o, total) - o.done;
+            o.done += n;
+            for (long i = 0; i < n; i ++) {
+                o.j = this.pick(o);
+                o.z = moebiusPt(gen.gens[o.j], o.z);
+                boolean fresh = this.markPt(o.z);
+                if (sink != null) {
+                    sink.add(o.z.x, o.z.y);
+                }
+
+                if (this.adaptive) {
+                    o.uses[o.j] ++;
+                    if (fresh) o.hits[o.j] ++;
+                    if (++ o.steps % WINDOW == 0) this.adapt(o);
+                }
+            }
         }
     }
 
     /**
      * Applies the IFS method to draw the limit set of this Kleinian group.
-     * The initial condition is the positive fixed point of one of the generators (a here).
+     * The initial condition is the positive fixed point of one of the generators (a here),
+     * or those of short words if seeds have been set, and calling this again keeps
+     * refining the same image. When rendering one shard, this is the number of points
+     * for the whole job, of which the shard plots its own share.
      * @param numPts Number of points to plot.
      */
     public void calculate(long numPts) {
-        Complex z = gen.gens[0].fix();
-        int j;
-        for (long i = 0; i < numPts; i ++) {
-            j = (int)Math.floor(4 * Math.random());
-            z = moebiusPt(gen.gens[j], z);
-            this.markPt(z);
+        long done = 0, n;
+        long chunk = (long) CHUNK * this.threads * (this.shard < 0 ? 1 : this.shards);
+        while (done < numPts) {
+            n = Math.min(chunk, numPts - done);
+            this.iterate(n);
+
+            // Ask for a snapshot whenever the running total crosses a multiple of snapEvery
+            if (snapEvery > 0 && this.total / snapEvery > (this.total - n) / snapEvery) {
+                this.requestSnapshot();
+            }
+            done += n;
         }
     }
 
     /**
-     * Sets center of the view coordinate system.
-     * @param cen Center point as a complex number.
+     * Refines the image for (roughly) a given amount of time.
+     * @param millis Time budget in ms.
+     * @return The best image available when time ran out.
      */
-    public void setCenter(Complex cen) {
-        this.cen = cen;
+    public BufferedImage calculateFor(long millis) {
+        long deadline = System.nanoTime() + millis * 1000000L;
+        do {
+            this.calculate(CHUNK);
+        } while (System.nanoTime() < deadline);
+        return this.snapshot();
     }
 
     /**
-     * Exports limit set as a .png file with given name.
+     * Quickly renders a downscaled version of the limit set with
+     * few points, to check the framing before a long render.
      * @param name Name of file.
+     * @param factor Factor to shrink the image by.
+     * @param numPts Number of points to plot.
      */
-    public void export(String name) {
-        File file = new File(name + ".png");
-        try {
-            ImageIO.write(this.im, "png", file);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+    public void preview(String name, int factor, long numPts) {
+        KleinianRendererIFS ren = new KleinianRendererIFS(width / factor, height / factor, size, gen, bits != null);
+        this.copyStyle(ren, factor);
+        ren.setCenter(this.cen);
+        ren.setSeed(this.seed);
+
+        ren.calculate(numPts);
+        ren.export(name);
+    }
+
+    /**
+     * Sets center of the view coordinate system.
+     * @param cen Center point as a complex number.
+     */
+    public void setCenter(Complex cen) {
+        this.cen = cen;
     }
 }
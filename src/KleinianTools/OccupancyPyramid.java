@@ -0,0 +1,114 @@
+package KleinianTools;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps track of which boxes of 2x2, 4x4, 8x8... pixels have anything drawn in them,
+ * updated as each pixel is first drawn. The number of boxes hit at each size gives
+ * a box-counting estimate of the limit set's dimension at any time, without going
+ * back over the image. As a render converges, the estimate settles down.
+ */
+public class OccupancyPyramid {
+    // Levels with fewer boxes hit than this are too coarse to fit
+    private static final int MIN_BOXES = 64;
+
+    Bitmap[] levels;
+    LongAdder[] counts;
+
+    /**
+     * Creates an empty pyramid for an image of given size.
+     * @param width Width of the image.
+     * @param height Height of the image.
+     */
+    public OccupancyPyramid(int width, int height) {
+        int n = 1;
+        while ((Math.max(width, height) - 1) >> n > 0) n ++;
+
+        // Level 0 is the image itself, so only its count is kept here
+        this.levels = new Bitmap[n + 1];
+        this.counts = new LongAdder[n + 1];
+        for (int k = 0; k <= n; k ++) {
+            if (k > 0) {
+                this.levels[k] = new Bitmap(((width - 1) >> k) + 1, ((height - 1) >> k) + 1);
+            }
+            this.counts[k] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records that a pixel has just been drawn for the first time, and marks
+     * each box containing it until reaching one that was marked already.
+     * @param x X coordinate.
+     * @param y Y coordinate.
+     */
+    public void mark(int x, int y) {
+        this.counts[0].increment();
+        for (int k = 1; k < this.levels.length; k ++) {
+            x >>= 1;
+            y >>= 1;
+            if (!this.levels[k].set(x, y)) return;
+            this.counts[k].increment();
+        }
+    }
+
+    /**
+     * Empties the pyramid.
+     */
+    public void clear() {
+        for (int k = 0; k < this.levels.length; k ++) {
+            if (k > 0) this.levels[k].clear();
+            this.counts[k].reset();
+        }
+    }
+
+    /**
+     * Returns the number of levels, including the image itself.
+     * @return Number of levels.
+     */
+    public int levels() {
+        return this.levels.length;
+    }
+
+    /**
+     * Returns the number of boxes hit at a level.
+     * @param level Level, where boxes are 2^level px across.
+     * @return Number of boxes hit.
+     */
+    public long count(int level) {
+        return this.counts[level].sum();
+    }
+
+    /**
+     * Estimates the box-counting dimension from every level with enough boxes hit.
+     * @return Dimension estimate, or NaN if there's not enough drawn yet.
+     */
+    public double dimension() {
+        int hi = 0;
+        while (hi + 1 < this.levels.length && this.count(hi + 1) >= MIN_BOXES) hi ++;
+        return this.dimension(0, hi);
+    }
+
+    /**
+     * Estimates the box-counting dimension as the slope of a least squares fit
+     * of log N against -log s, where N boxes of s px are hit, over a range of levels.
+     * @param lo Finest level to use.
+     * @param hi Coarsest level to use.
+     * @return Dimension estimate, or NaN if fewer than two levels are usable.
+     */
+    public double dimension(int lo, int hi) {
+        double sx = 0, sy = 0, sxx = 0, sxy = 0;
+        int n = 0;
+        for (int k = lo; k <= hi; k ++) {
+            long c = this.count(k);
+            if (c == 0) continue;
+
+            double x = -k, y = Math.log(c) / Math.log(2);
+            sx += x; sy += y;
+            sxx += x * x; sxy += x * y;
+            n ++;
+        }
+
+        if (n < 2) return Double.NaN;
+        return (n * sxy - sx * sy) / (n * sxx - sx * sx);
+    }
+}
@@ -0,0 +1,361 @@
+package KleinianTools;
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A PNG encoder that filters and deflates blocks of rows in parallel
+ * (in the same way as pigz), plus raw PPM/PGM output for other tools.
+ *
+ * Each block is compressed on its own and sync-flushed so that the blocks
+ * can simply be concatenated into one zlib stream. Every block goes in its
+ * own IDAT chunk, and the Adler-32 checksums of the blocks are combined at the end.
+ */
+public final class PngWriter {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    // Roughly how many raw bytes go into each block
+    private static final int BLOCK_BYTES = 1 << 20;
+    private static final int ADLER_BASE = 65521;
+
+    /**
+     * Supplies the unfiltered bytes of each row of an image.
+     * Must be safe to call from several threads at once.
+     */
+    interface Rows {
+        void row(int y, byte[] out);
+    }
+
+    /**
+     * Writes an image as an 8-bit RGB .png file.
+     * @param im Image to write.
+     * @param file File to write to.
+     */
+    public static void writeRGB(BufferedImage im, File file) {
+        int w = im.getWidth();
+        write(file, w, im.getHeight(), 2, 8, null, 3 * w, 3, (y, out) -> {
+            int[] px = pixels(im, y, null);
+            for (int x = 0, i = 0; x < w; x ++) {
+                out[i ++] = (byte) (px[x] >> 16);
+                out[i ++] = (byte) (px[x] >> 8);
+                out[i ++] = (byte) px[x];
+            }
+        });
+    }
+
+    /**
+     * Writes a two-color image as a 1-bit palette .png file. Any pixel that
+     * isn't the foreground color is written as background.
+     * @param im Image to write.
+     * @param fg Foreground color (as RGB).
+     * @param bg Background color (as RGB).
+     * @param file File to write to.
+     */
+    public static void writeBilevel(BufferedImage im, int fg, int bg, File file) {
+        int w = im.getWidth();
+        writeBilevel(w, im.getHeight(), fg, bg, (y, out) -> {
+            int[] px = pixels(im, y, null);
+            for (int x = 0; x < w; x ++) {
+                if ((px[x] & 0xFFFFFF) == (fg & 0xFFFFFF)) {
+                    out[x >> 3] |= (byte) (0x80 >> (x & 7));
+                }
+            }
+        }, file);
+    }
+
+    /**
+     * Writes 1-bit rows as a palette .png file.
+     * @param w Width of the image.
+     * @param h Height of the image.
+     * @param fg Foreground color (as RGB), used for set bits.
+     * @param bg Background color (as RGB), used for clear bits.
+     * @param rows Packed rows, most significant bit first. The row buffers arrive cleared.
+     * @param file File to write to.
+     */
+    static void writeBilevel(int w, int h, int fg, int bg, Rows rows, File file) {
+        byte[] plte = {(byte) (bg >> 16), (byte) (bg >> 8), (byte) bg,
+                       (byte) (fg >> 16), (byte) (fg >> 8), (byte) fg};
+        write(file, w, h, 3, 1, plte, (w + 7) / 8, 1, rows);
+    }
+
+    /**
+     * Writes an image as a binary .ppm (P6) file.
+     * @param im Image to write.
+     * @param file File to write to.
+     */
+    public static void writePPM(BufferedImage im, File file) {
+        int w = im.getWidth(), h = im.getHeight();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            out.write(("P6\n" + w + " " + h + "\n255\n").getBytes(StandardCharsets.US_ASCII));
+            byte[] row = new byte[3 * w];
+            int[] px = new int[w];
+            for (int y = 0; y < h; y ++) {
+                pixels(im, y, px);
+                for (int x = 0, i = 0; x < w; x ++) {
+                    row[i ++] = (byte) (px[x] >> 16);
+                    row[i ++] = (byte) (px[x] >> 8);
+                    row[i ++] = (byte) px[x];
+                }
+                out.write(row);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes an image as a binary grayscale .pgm (P5) file.
+     * @param im Image to write.
+     * @param file File to write to.
+     */
+    public static void writePGM(BufferedImage im, File file) {
+        int w = im.getWidth(), h = im.getHeight();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            out.write(("P5\n" + w + " " + h + "\n255\n").getBytes(StandardCharsets.US_ASCII));
+            byte[] row = new byte[w];
+            int[] px = new int[w];
+            for (int y = 0; y < h; y ++) {
+                pixels(im, y, px);
+                for (int x = 0; x < w; x ++) {
+                    // Rec. 601 luma
+                    int r = (px[x] >> 16) & 0xFF, g = (px[x] >> 8) & 0xFF, b = px[x] & 0xFF;
+                    row[x] = (byte) ((299 * r + 587 * g + 114 * b + 500) / 1000);
+                }
+                out.write(row);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads a row of pixels as RGB, straight from the raster when the image is RGB already
+     * (which saves a trip through the color model for every pixel).
+     * @param im Image to read.
+     * @param y Row to read.
+     * @param px Buffer to read into, or null for a new one.
+     * @return Row of pixels.
+     */
+    private static int[] pixels(BufferedImage im, int y, int[] px) {
+        int w = im.getWidth();
+        if (im.getType() == BufferedImage.TYPE_INT_RGB) {
+            return (int[]) im.getRaster().getDataElements(0, y, w, 1, px);
+        }
+        return im.getRGB(0, y, w, 1, px, 0, w);
+    }
+
+    /**
+     * A compressed block of rows, ready to be written.
+     */
+    private static class Block {
+        byte[] chunk;
+        int adler;
+        long len;
+    }
+
+    /**
+     * Writes a .png file, compressing blocks of rows in parallel.
+     * @param file File to write to.
+     * @param w Width of the image.
+     * @param h Height of the image.
+     * @param colorType PNG color type.
+     * @param bitDepth PNG bit depth.
+     * @param plte Palette, or null for none.
+     * @param rowLen Number of bytes in each row.
+     * @param bpp Number of bytes per pixel (at least 1), for filtering.
+     * @param rows Supplies the rows.
+     */
+    static void write(File file, int w, int h, int colorType, int bitDepth, byte[] plte,
+                      int rowLen, int bpp, Rows rows) {
+        int per = Math.max(1, BLOCK_BYTES / (rowLen + 1));
+        List<CompletableFuture<Block>> blocks = new ArrayList<>();
+        for (int y = 0; y < h; y += per) {
+            int y0 = y, y1 = Math.min(h, y + per);
+            blocks.add(CompletableFuture.supplyAsync(() -> block(rows, y0, y1, rowLen, bpp, y1 == h)));
+        }
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            out.write(SIGNATURE);
+            out.write(chunk("IHDR", new byte[] {
+                    (byte) (w >> 24), (byte) (w >> 16), (byte) (w >> 8), (byte) w,
+                    (byte) (h >> 24), (byte) (h >> 16), (byte) (h >> 8), (byte) h,
+                    (byte) bitDepth, (byte) colorType, 0, 0, 0}));
+            if (plte != null) {
+                out.write(chunk("PLTE", plte));
+            }
+
+            // zlib header (deflate, 32K window), then the blocks in order as they finish
+            out.write(chunk("IDAT", new byte[] {0x78, (byte) 0x9C}));
+            int adler = 1;
+            for (CompletableFuture<Block> f : blocks) {
+                Block b = f.join();
+                out.write(b.chunk);
+                adler = combine(adler, b.adler, b.len);
+            }
+            out.write(chunk("IDAT", new byte[] {
+                    (byte) (adler >> 24), (byte) (adler >> 16), (byte) (adler >> 8), (byte) adler}));
+            out.write(chunk("IEND", new byte[0]));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Filters and deflates a block of rows into an IDAT chunk.
+     * @param rows Supplies the rows.
+     * @param y0 First row of the block.
+     * @param y1 Row after the last row of the block.
+     * @param rowLen Number of bytes in each row.
+     * @param bpp Number of bytes per pixel, for filtering.
+     * @param last Whether this is the last block of the image.
+     * @return Compressed block.
+     */
+    private static Block block(Rows rows, int y0, int y1, int rowLen, int bpp, boolean last) {
+        byte[] raw = new byte[(y1 - y0) * (rowLen + 1)];
+        byte[] prev = new byte[rowLen], cur = new byte[rowLen], tmp;
+        if (y0 > 0) {
+            rows.row(y0 - 1, prev);
+        }
+
+        for (int y = y0, off = 0; y < y1; y ++, off += rowLen + 1) {
+            Arrays.fill(cur, (byte) 0);
+            rows.row(y, cur);
+            filter(cur, prev, raw, off, bpp);
+            tmp = prev; prev = cur; cur = tmp;
+        }
+
+        Block b = new Block();
+        Adler32 a = new Adler32();
+        a.update(raw);
+        b.adler = (int) a.getValue();
+        b.len = raw.length;
+
+        // Only the last block may end the deflate stream, the rest are flushed to a byte boundary
+        Deflater d = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        d.setInput(raw);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 64);
+        byte[] buf = new byte[1 << 16];
+        int n;
+        if (last) {
+            d.finish();
+            while (!d.finished()) {
+                n = d.deflate(buf);
+                out.write(buf, 0, n);
+            }
+        } else {
+            do {
+                n = d.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                out.write(buf, 0, n);
+            } while (n == buf.length);
+        }
+        d.end();
+
+        b.chunk = chunk("IDAT", out.toByteArray());
+        return b;
+    }
+
+    /**
+     * Filters a row with whichever PNG filter gives the smallest sum of
+     * absolute differences, which usually compresses best.
+     * @param cur Current row.
+     * @param prev Previous row (all zero for the first row).
+     * @param out Buffer to write the filter type and filtered row to.
+     * @param off Offset to write at.
+     * @param bpp Number of bytes per pixel.
+     */
+    private static void filter(byte[] cur, byte[] prev, byte[] out, int off, int bpp) {
+        int n = cur.length;
+        long[] sums = new long[5];
+        for (int i = 0; i < n; i ++) {
+            int a = i >= bpp ? cur[i - bpp] & 0xFF : 0;
+            int b = prev[i] & 0xFF;
+            int c = i >= bpp ? prev[i - bpp] & 0xFF : 0;
+            int x = cur[i] & 0xFF;
+            for (int type = 0; type < 5; type ++) {
+                sums[type] += Math.abs((byte) (x - predict(type, a, b, c)));
+            }
+        }
+
+        int best = 0;
+        for (int type = 1; type < 5; type ++) {
+            if (sums[type] < sums[best]) best = type;
+        }
+
+        out[off] = (byte) best;
+        for (int i = 0; i < n; i ++) {
+            int a = i >= bpp ? cur[i - bpp] & 0xFF : 0;
+            int b = prev[i] & 0xFF;
+            int c = i >= bpp ? prev[i - bpp] & 0xFF : 0;
+            out[off + 1 + i] = (byte) ((cur[i] & 0xFF) - predict(best, a, b, c));
+        }
+    }
+
+    /**
+     * Predicts a byte from its neighbours using a PNG filter.
+     * @param type Filter type (0 to 4).
+     * @param a Byte to the left.
+     * @param b Byte above.
+     * @param c Byte above and to the left.
+     * @return Predicted byte.
+     */
+    private static int predict(int type, int a, int b, int c) {
+        switch (type) {
+            case 1: return a;
+            case 2: return b;
+            case 3: return (a + b) >> 1;
+            case 4: {
+                int p = a + b - c;
+                int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+                return (pa <= pb && pa <= pc) ? a : (pb <= pc ? b : c);
+            }
+            default: return 0;
+        }
+    }
+
+    /**
+     * Builds a PNG chunk (length, type, data and CRC).
+     * @param type Chunk type.
+     * @param data Chunk data.
+     * @return Chunk bytes.
+     */
+    private static byte[] chunk(String type, byte[] data) {
+        byte[] out = new byte[data.length + 12];
+        int n = data.length;
+        out[0] = (byte) (n >> 24); out[1] = (byte) (n >> 16); out[2] = (byte) (n >> 8); out[3] = (byte) n;
+        System.arraycopy(type.getBytes(StandardCharsets.US_ASCII), 0, out, 4, 4);
+        System.arraycopy(data, 0, out, 8, n);
+
+        CRC32 crc = new CRC32();
+        crc.update(out, 4, n + 4);
+        int c = (int) crc.getValue();
+        out[n + 8] = (byte) (c >> 24); out[n + 9] = (byte) (c >> 16); out[n + 10] = (byte) (c >> 8); out[n + 11] = (byte) c;
+        return out;
+    }
+
+    /**
+     * Combines the Adler-32 checksums of two pieces of data into that of
+     * the two joined together (as zlib's adler32_combine does).
+     * @param a1 Checksum of the first piece.
+     * @param a2 Checksum of the second piece.
+     * @param len2 Length of the second piece.
+     * @return Checksum of both pieces.
+     */
+    private static int combine(int a1, int a2, long len2) {
+        long rem = len2 % ADLER_BASE;
+        long s1 = a1 & 0xFFFF, s2 = (rem * s1) % ADLER_BASE;
+        s1 += (a2 & 0xFFFF) + ADLER_BASE - 1;
+        s2 += ((a1 >>> 16) & 0xFFFF) + ((a2 >>> 16) & 0xFFFF) + ADLER_BASE - rem;
+        if (s1 >= ADLER_BASE) s1 -= ADLER_BASE;
+        if (s1 >= ADLER_BASE) s1 -= ADLER_BASE;
+        if (s2 >= 2L * ADLER_BASE) s2 -= 2L * ADLER_BASE;
+        if (s2 >= ADLER_BASE) s2 -= ADLER_BASE;
+        return (int) (s1 | (s2 << 16));
+    }
+}
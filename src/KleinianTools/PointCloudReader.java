@@ -0,0 +1,169 @@
+package KleinianTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads back a point cloud file written by PointCloudWriter. Each block is
+ * memory-mapped, and its columns are handed out as views of the mapping,
+ * so nothing is copied.
+ */
+public class PointCloudReader implements AutoCloseable {
+    private final FileChannel ch;
+    private final int bytes;
+    private final long count;
+    private final long[] offsets;
+    private final int[] sizes;
+
+    /**
+     * Opens a point cloud file and finds its blocks.
+     * @param file File to read.
+     */
+    public PointCloudReader(File file) {
+        try {
+            this.ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            ByteBuffer head = this.read(0, PointCloudWriter.HEADER);
+            if (head.getInt(0) != PointCloudWriter.MAGIC || head.getInt(4) != PointCloudWriter.VERSION) {
+                throw new IOException(file + " is not a point cloud file");
+            }
+            this.bytes = head.getInt(8);
+            this.count = head.getLong(16);
+
+            // Walk the block headers to find where each block starts
+            List<long[]> blocks = new ArrayList<>();
+            long pos = PointCloudWriter.HEADER, len = ch.size();
+            while (pos + 8 <= len) {
+                int n = this.read(pos, 8).getInt(0);
+                blocks.add(new long[] {pos + 8, n});
+                pos += 8 + 2L * n * bytes;
+            }
+
+            this.offsets = new long[blocks.size()];
+            this.sizes = new int[blocks.size()];
+            for (int i = 0; i < blocks.size(); i ++) {
+                this.offsets[i] = blocks.get(i)[0];
+                this.sizes[i] = (int) blocks.get(i)[1];
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads a few bytes from the file.
+     * @param pos Position to read at.
+     * @param n Number of bytes.
+     * @return Bytes read.
+     */
+    private ByteBuffer read(long pos, int n) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(n).order(ByteOrder.LITTLE_ENDIAN);
+        while (bb.hasRemaining() && ch.read(bb, pos + bb.position()) >= 0);
+        return bb;
+    }
+
+    /**
+     * Returns whether the values are doubles rather than floats.
+     * @return Whether the values are doubles.
+     */
+    public boolean doubles() {
+        return this.bytes == 8;
+    }
+
+    /**
+     * Returns the total number of points, as recorded in the header.
+     * @return Number of points.
+     */
+    public long count() {
+        return this.count;
+    }
+
+    /**
+     * Returns the number of blocks in the file.
+     * @return Number of blocks.
+     */
+    public int blocks() {
+        return this.offsets.length;
+    }
+
+    /**
+     * Returns the number of points in a block.
+     * @param b Index of the block.
+     * @return Number of points.
+     */
+    public int size(int b) {
+        return this.sizes[b];
+    }
+
+    /**
+     * Maps one column of a block.
+     * @param b Index of the block.
+     * @param col 0 for x, 1 for y.
+     * @return Mapped column.
+     */
+    private ByteBuffer column(int b, int col) {
+        long len = (long) this.sizes[b] * this.bytes;
+        try {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, this.offsets[b] + col * len, len);
+            return buf.order(ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Maps the x coordinates of a block of float points.
+     * @param b Index of the block.
+     * @return X coordinates.
+     */
+    public FloatBuffer xs(int b) {
+        return this.column(b, 0).asFloatBuffer();
+    }
+
+    /**
+     * Maps the y coordinates of a block of float points.
+     * @param b Index of the block.
+     * @return Y coordinates.
+     */
+    public FloatBuffer ys(int b) {
+        return this.column(b, 1).asFloatBuffer();
+    }
+
+    /**
+     * Maps the x coordinates of a block of double points.
+     * @param b Index of the block.
+     * @return X coordinates.
+     */
+    public DoubleBuffer xsDouble(int b) {
+        return this.column(b, 0).asDoubleBuffer();
+    }
+
+    /**
+     * Maps the y coordinates of a block of double points.
+     * @param b Index of the block.
+     * @return Y coordinates.
+     */
+    public DoubleBuffer ysDouble(int b) {
+        return this.column(b, 1).asDoubleBuffer();
+    }
+
+    /**
+     * Closes the file. Buffers already handed out stay valid.
+     */
+    @Override
+    public void close() {
+        try {
+            this.ch.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
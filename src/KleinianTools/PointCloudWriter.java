@@ -0,0 +1,274 @@
+package KleinianTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams sampled points of a limit set to a compact binary file, on a
+ * thread of its own so that the orbits don't wait on the disk.
+ *
+ * The file is little-endian, and made of a header followed by blocks of points:
+ * <pre>
+ * int    magic ("KPTS")
+ * int    version
+ * int    bytes       bytes per value, 4 (float) or 8 (double)
+ * int    blockSize   most points in a block
+ * long   count       total number of points
+ *
+ * then for each block:
+ * int    n           number of points in the block
+ * int    (padding)
+ * value  x[n]
+ * value  y[n]
+ * </pre>
+ * so each block holds its x and y coordinates as two columns. PointCloudReader maps it back.
+ */
+public class PointCloudWriter {
+    static final int MAGIC = 0x4B505453;
+    static final int VERSION = 1;
+    static final int HEADER = 24;
+    private static final int BLOCK = 1 << 16;
+
+    private final FileChannel ch;
+    private final int bytes;
+    private final BlockingQueue<ByteBuffer> free = new LinkedBlockingQueue<>(), full = new LinkedBlockingQueue<>();
+    private int buffers = 0;
+    private final List<Sink> sinks = new ArrayList<>();
+    private final Thread writer;
+    private final AtomicLong count = new AtomicLong();
+    private volatile IOException error;
+    private volatile boolean closed;
+
+    Bitmap grid;
+    float x0, y0, cell;
+
+    /**
+     * Collects points from one thread into blocks, and hands
+     * full blocks to the writer thread. Not safe to share between threads.
+     */
+    public class Sink {
+        private ByteBuffer buf;
+        private int n = 0;
+
+        /**
+         * Adds a point, unless deduplication is on and another point has already
+         * landed in the same grid cell (or it's outside the grid).
+         * @param x Real part.
+         * @param y Imaginary part.
+         * @throws IllegalStateException If the writer has been closed.
+         */
+        public void add(float x, float y) {
+            if (closed) {
+                throw new IllegalStateException("Point cloud writer is closed");
+            }
+            if (grid != null) {
+                int i = (int) Math.floor((x - x0) / cell), j = (int) Math.floor((y - y0) / cell);
+                if (i < 0 || j < 0 || i >= grid.width || j >= grid.height || !grid.set(i, j)) {
+                    return;
+                }
+            }
+
+            if (this.buf == null) {
+                this.buf = take(free);
+            }
+            if (bytes == 4) {
+                this.buf.putFloat(8 + 4 * n, x).putFloat(8 + 4 * (BLOCK + n), y);
+            } else {
+                this.buf.putDouble(8 + 8 * n, x).putDouble(8 + 8 * (BLOCK + n), y);
+            }
+
+            if (++ this.n == BLOCK) {
+                this.flush();
+            }
+        }
+
+        /**
+         * Hands the current block to the writer thread, full or not.
+         */
+        void flush() {
+            if (this.buf != null && this.n > 0) {
+                this.buf.putInt(0, this.n);
+                put(full, this.buf);
+                this.buf = null;
+                this.n = 0;
+            }
+        }
+    }
+
+    /**
+     * Creates a new point cloud file and starts its writer thread.
+     * @param file File to write to.
+     * @param doubles Whether to store doubles rather than floats.
+     */
+    public PointCloudWriter(File file, boolean doubles) {
+        this.bytes = doubles ? 8 : 4;
+        try {
+            this.ch = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            this.ch.write(this.header(0), 0);
+            this.ch.position(HEADER);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        // A few blocks are enough to keep both sides busy
+        this.allocate(2 * Runtime.getRuntime().availableProcessors() + 2);
+
+        this.writer = new Thread(this::write, "point-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Only keeps the first point to land in each cell of a grid. Points outside the grid are dropped.
+     * @param x0 Real part of the grid's corner.
+     * @param y0 Imaginary part of the grid's corner.
+     * @param cell Size of a cell.
+     * @param nx Number of cells across.
+     * @param ny Number of cells down.
+     */
+    public void setDedup(float x0, float y0, float cell, int nx, int ny) {
+        this.x0 = x0;
+        this.y0 = y0;
+        this.cell = cell;
+        this.grid = new Bitmap(nx, ny);
+    }
+
+    /**
+     * Creates a new sink to add points through.
+     * @return Sink.
+     */
+    public synchronized Sink sink() {
+        if (this.closed) {
+            throw new IllegalStateException("Point cloud writer is closed");
+        }
+        Sink s = new Sink();
+        this.sinks.add(s);
+
+        // Each sink holds on to a block until it fills, so there must always be more blocks than sinks
+        this.allocate(this.sinks.size() + 2 - this.buffers);
+        return s;
+    }
+
+    /**
+     * Adds blocks to the pool.
+     * @param n Number of blocks to add.
+     */
+    private void allocate(int n) {
+        for (int i = 0; i < n; i ++) {
+            this.free.add(ByteBuffer.allocateDirect(8 + 2 * BLOCK * bytes).order(ByteOrder.LITTLE_ENDIAN));
+            this.buffers ++;
+        }
+    }
+
+    /**
+     * Returns the number of points written so far.
+     * @return Number of points.
+     */
+    public long count() {
+        return this.count.get();
+    }
+
+    /**
+     * Writes whatever the sinks still hold, waits for the writer thread to
+     * finish, then fills in the point count and closes the file.
+     * None of the sinks may be in use while this runs, and adding to them afterwards throws.
+     */
+    public synchronized void close() {
+        if (this.closed) return;
+        this.closed = true;
+        for (Sink s : this.sinks) {
+            s.flush();
+        }
+        put(this.full, ByteBuffer.allocate(0));
+
+        try {
+            this.writer.join();
+            if (this.error != null) {
+                throw this.error;
+            }
+            this.ch.write(this.header(this.count.get()), 0);
+            this.ch.close();
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The writer thread, which writes full blocks until it is handed an empty one.
+     */
+    private void write() {
+        try {
+            while (true) {
+                ByteBuffer buf = take(this.full);
+                if (buf.capacity() == 0) return;
+
+                // Write the x column and then only as much of the y column as is used
+                int n = buf.getInt(0), col = BLOCK * bytes;
+                ByteBuffer[] parts = {
+                        buf.duplicate().position(0).limit(8 + n * bytes),
+                        buf.duplicate().position(8 + col).limit(8 + col + n * bytes)};
+                while (parts[1].hasRemaining()) {
+                    this.ch.write(parts);
+                }
+
+                this.count.addAndGet(n);
+                buf.clear();
+                put(this.free, buf);
+            }
+        } catch (IOException e) {
+            this.error = e;
+            // Keep taking blocks so that nobody waits forever on a dead writer
+            ByteBuffer buf;
+            while ((buf = take(this.full)).capacity() != 0) {
+                put(this.free, buf.clear());
+            }
+        }
+    }
+
+    /**
+     * Builds the file header.
+     * @param count Number of points.
+     * @return Header, ready to write.
+     */
+    private ByteBuffer header(long count) {
+        ByteBuffer bb = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        bb.putInt(MAGIC).putInt(VERSION).putInt(this.bytes).putInt(BLOCK).putLong(count);
+        return bb.flip();
+    }
+
+    /**
+     * Takes a block from a queue, waiting if there isn't one.
+     * @param q Queue to take from.
+     * @return Block.
+     */
+    private static ByteBuffer take(BlockingQueue<ByteBuffer> q) {
+        try {
+            return q.take();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Puts a block on a queue, waiting if it is full.
+     * @param q Queue to put on.
+     * @param buf Block.
+     */
+    private static void put(BlockingQueue<ByteBuffer> q, ByteBuffer buf) {
+        try {
+            q.put(buf);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
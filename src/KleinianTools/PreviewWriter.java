@@ -0,0 +1,79 @@
+package KleinianTools;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes snapshots of a renderer's image from its own thread,
+ * either at a fixed interval or whenever the renderer asks for one.
+ * If the renderer has a dimension listener, it is handed the current
+ * estimate after each snapshot.
+ */
+class PreviewWriter {
+    private final Renderer ren;
+    private final String name;
+    private final ScheduledExecutorService exec;
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private int count = 0;
+
+    /**
+     * Creates a new snapshot writer and starts its thread.
+     * @param ren Renderer to take snapshots of.
+     * @param name Prefix of the snapshot files.
+     * @param interval Time between snapshots in ms, or 0 for none.
+     */
+    PreviewWriter(Renderer ren, String name, long interval) {
+        this.ren = ren;
+        this.name = name;
+        this.exec = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "snapshot-writer");
+            t.setDaemon(true);
+            return t;
+        });
+
+        if (interval > 0) {
+            exec.scheduleWithFixedDelay(this::write, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Queues a snapshot unless one is already waiting, so the
+     * render threads never block on the file system.
+     */
+    void request() {
+        if (pending.compareAndSet(false, true)) {
+            exec.execute(this::write);
+        }
+    }
+
+    /**
+     * Copies the image and writes it to the next numbered file.
+     */
+    private void write() {
+        pending.set(false);
+        try {
+            String file = String.format("%s_%04d", name, count++);
+            Renderer.write(ren.snapshot(), file);
+            if (ren.onDimension != null) {
+                ren.onDimension.accept(ren.dimension());
+            }
+        } catch (RuntimeException e) {
+            // Don't let a failed write cancel the remaining snapshots
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops the periodic snapshots and waits for queued ones to be written.
+     */
+    void close() {
+        exec.shutdown();
+        try {
+            exec.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
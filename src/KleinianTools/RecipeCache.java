@@ -0,0 +1,286 @@
+package KleinianTools;
+
+import MathUtils.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.Supplier;
+
+/**
+ * An on-disk cache of recipe results and their word tables, so that renders
+ * with parameters we've used before don't have to recompute them.
+ *
+ * Each entry lives in its own file named after a hash of the recipe name and
+ * parameters, laid out as follows (big-endian):
+ * <pre>
+ * int    magic ("KLNC")
+ * int    version
+ * int    depth         length of the longest words in the table
+ * int    count         number of words in the table
+ * float  gens[2][8]    generators a and b
+ * float  words[count][8]
+ * byte   last[count]   index of the last generator of each word
+ * </pre>
+ * where each matrix is stored as the real and imaginary parts of a, b, c and d.
+ * When the cache grows past its size limit, the least recently used entries are deleted.
+ */
+public class RecipeCache {
+    private static final int MAGIC = 0x4B4C4E43;
+    private static final int VERSION = 1;
+    private static final int HEADER = 16 + 2 * 32;
+
+    File dir;
+    long maxBytes;
+
+    /**
+     * Creates a cache in a given directory.
+     * @param dir Directory to keep the cache in (created if needed).
+     * @param maxBytes Maximum total size of the cache files.
+     */
+    public RecipeCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new RuntimeException("Could not create cache directory " + dir);
+        }
+    }
+
+    /**
+     * Grandma's recipe (see Recipes.grandmaRecipe), cached.
+     * @param tA Trace of first generator matrix.
+     * @param tB Trace of second generator matrix.
+     * @param solNum Which solution to use (0 or 1).
+     * @return A Generator object representing the desired group.
+     */
+    public Generator grandmaRecipe(Complex tA, Complex tB, int solNum) {
+        return generator("grandma", new float[] {tA.x, tA.y, tB.x, tB.y, solNum},
+                () -> Recipes.grandmaRecipe(tA, tB, solNum));
+    }
+
+    /**
+     * Jorgensen's recipe (see Recipes.jorgensenRecipe), cached.
+     * @param tA Trace of first generator matrix.
+     * @param tB Trace of second generator matrix.
+     * @param solNum Which solution to use (0 or 1).
+     * @return A Generator object representing the desired group.
+     */
+    public Generator jorgensenRecipe(Complex tA, Complex tB, int solNum) {
+        return generator("jorgensen", new float[] {tA.x, tA.y, tB.x, tB.y, solNum},
+                () -> Recipes.jorgensenRecipe(tA, tB, solNum));
+    }
+
+    /**
+     * Looks up the generators for a recipe, computing and storing them if they aren't cached.
+     * @param recipe Name of the recipe.
+     * @param params Parameters of the recipe.
+     * @param compute Computes the generators on a miss.
+     * @return Generators of the group.
+     */
+    public Generator generator(String recipe, float[] params, Supplier<Generator> compute) {
+        File file = this.entry(recipe, params);
+        if (file.isFile()) {
+            try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer buf = map(ch);
+                if (buf != null) {
+                    FloatBuffer fb = floats(buf);
+                    this.touch(file);
+                    return new Generator(readMatrix(fb), readMatrix(fb));
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        Generator gen = compute.get();
+        this.store(file, gen, WordTable.build(gen, 0));
+        return gen;
+    }
+
+    /**
+     * Looks up the word table for a recipe, computing and storing it if there isn't
+     * one that's long enough cached.
+     * @param recipe Name of the recipe.
+     * @param params Parameters of the recipe.
+     * @param gen Generators of the group (as returned by generator).
+     * @param depth Length of the longest words.
+     * @return Table of word products.
+     */
+    public WordTable words(String recipe, float[] params, Generator gen, int depth) {
+        File file = this.entry(recipe, params);
+        if (file.isFile()) {
+            try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer buf = map(ch);
+                if (buf != null && buf.getInt(8) >= depth) {
+                    this.touch(file);
+                    return readWords(buf, depth);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        WordTable table = WordTable.build(gen, depth);
+        this.store(file, gen, table);
+        return table;
+    }
+
+    /**
+     * Maps a cache file and checks its header.
+     * @param ch Channel of the file.
+     * @return The mapped file, or null if it's not a valid entry.
+     */
+    private static MappedByteBuffer map(FileChannel ch) throws IOException {
+        long len = ch.size();
+        if (len < HEADER) return null;
+
+        MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, len);
+        if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION ||
+                len != HEADER + 33L * buf.getInt(12)) {
+            return null;
+        }
+        return buf;
+    }
+
+    /**
+     * Views a mapped cache file as floats, starting at the generators.
+     * @param buf Mapped file.
+     * @return Float view of the file.
+     */
+    private static FloatBuffer floats(ByteBuffer buf) {
+        return buf.slice(16, buf.capacity() - 16).asFloatBuffer();
+    }
+
+    /**
+     * Reads the words up to a given length out of a mapped cache file, which may
+     * hold longer ones. Always returning the length asked for keeps the table
+     * (and so anything seeded from it) the same whatever happens to be cached.
+     * @param buf Mapped file.
+     * @param depth Length of the longest words to read.
+     * @return Word table.
+     */
+    private static WordTable readWords(ByteBuffer buf, int depth) {
+        int stored = buf.getInt(12);
+        int count = depth == 0 ? 0 : (int) (2 * Math.pow(3, depth) - 2);
+        FloatBuffer fb = floats(buf).position(16);
+        Matrix[] words = new Matrix[count];
+        for (int i = 0; i < count; i ++) {
+            words[i] = readMatrix(fb);
+        }
+
+        byte[] last = new byte[count];
+        buf.get(HEADER + 32 * stored, last);
+        return new WordTable(words, last, depth);
+    }
+
+    /**
+     * Reads a matrix (8 floats) from a buffer.
+     * @param fb Buffer to read from.
+     * @return Matrix.
+     */
+    private static Matrix readMatrix(FloatBuffer fb) {
+        return new Matrix(new Complex(fb.get(), fb.get()), new Complex(fb.get(), fb.get()),
+                          new Complex(fb.get(), fb.get()), new Complex(fb.get(), fb.get()));
+    }
+
+    /**
+     * Writes a matrix (8 floats) to a buffer.
+     * @param bb Buffer to write to.
+     * @param m Matrix.
+     */
+    private static void writeMatrix(ByteBuffer bb, Matrix m) {
+        for (Complex z : new Complex[] {m.a, m.b, m.c, m.d}) {
+            bb.putFloat(z.x).putFloat(z.y);
+        }
+    }
+
+    /**
+     * Writes an entry to the cache, then evicts old entries if it has grown too big.
+     * The entry is written to a temporary file first so readers never see half of it.
+     * @param file Entry file.
+     * @param gen Generators of the group.
+     * @param table Table of word products.
+     */
+    private void store(File file, Generator gen, WordTable table) {
+        int count = table.size();
+        ByteBuffer bb = ByteBuffer.allocate(HEADER + 33 * count);
+        bb.putInt(MAGIC).putInt(VERSION).putInt(table.depth).putInt(count);
+        writeMatrix(bb, gen.gens[0]);
+        writeMatrix(bb, gen.gens[1]);
+        for (Matrix m : table.words) {
+            writeMatrix(bb, m);
+        }
+        bb.put(table.last).flip();
+
+        try {
+            Path tmp = Files.createTempFile(this.dir.toPath(), "entry", ".tmp");
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                while (bb.hasRemaining()) ch.write(bb);
+            }
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        this.evict(file);
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits in its size limit.
+     * @param keep Entry that was just written, which is never deleted.
+     */
+    private void evict(File keep) {
+        File[] files = this.dir.listFiles((d, n) -> n.endsWith(".kc"));
+        if (files == null) return;
+
+        long total = 0;
+        for (File f : files) total += f.length();
+
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (int i = 0; i < files.length && total > this.maxBytes; i ++) {
+            if (!files[i].equals(keep)) {
+                long len = files[i].length();
+                if (files[i].delete()) total -= len;
+            }
+        }
+    }
+
+    /**
+     * Marks an entry as just used.
+     * @param file Entry file.
+     */
+    private void touch(File file) {
+        file.setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * Finds the file for a recipe, named by a SHA-256 hash of its name and parameters.
+     * @param recipe Name of the recipe.
+     * @param params Parameters of the recipe.
+     * @return Entry file (which may not exist yet).
+     */
+    private File entry(String recipe, float[] params) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(recipe.getBytes(StandardCharsets.UTF_8));
+
+            ByteBuffer bb = ByteBuffer.allocate(4 * params.length + 4);
+            bb.putInt(params.length);
+            for (float f : params) bb.putFloat(f);
+            md.update(bb.array());
+
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) sb.append(String.format("%02x", b));
+            return new File(this.dir, sb + ".kc");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
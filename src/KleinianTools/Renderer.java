@@ -0,0 +1,449 @@
+package KleinianTools;
+
+import MathUtils.Matrix;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.util.function.DoubleConsumer;
+
+/**
+ * The common base of the limit set renderers, which owns the image
+ * and takes care of colors, snapshots and export.
+ *
+ * In monochrome mode the image is a 1-bit Bitmap instead of an RGB
+ * image, which takes 32 times less memory and is only turned into
+ * an image when it is written out.
+ */
+public abstract class Renderer {
+    int width, height, hW, hH;
+    float size, scale;
+
+    int w = 1;
+    Color fg = Color.WHITE, bg = Color.BLACK;
+    BufferedImage im;
+    Graphics2D gr;
+    int[] px;
+    Bitmap bits;
+    OccupancyPyramid pyramid;
+    DoubleConsumer onDimension;
+
+    PreviewWriter preview;
+    long snapEvery;
+
+    // Shard being rendered (or -1 for all of them), out of how many
+    int shard = -1, shards = 1;
+
+    /**
+     * Sets up the image and view coordinates shared by every renderer.
+     * @param width Width of output image.
+     * @param height Height of output image.
+     * @param size Display size about minor axis.
+     * @param mono Whether to draw into a 1-bit bitmap.
+     */
+    Renderer(int width, int height, float size, boolean mono) {
+        this.width = width;
+        this.height = height;
+        this.hW = width / 2;
+        this.hH = height / 2;
+
+        this.size = size;
+        this.scale = Math.min(this.hW, this.hH) / size;
+
+        if (mono) {
+            bits = new Bitmap(width, height);
+        } else {
+            im = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            gr = im.createGraphics();
+            px = ((DataBufferInt) im.getRaster().getDataBuffer()).getData();
+        }
+    }
+
+    /**
+     * Sets the current paint color to a given color.
+     * @param r Red value of color.
+     * @param g Green value of color.
+     * @param b Blue value of color.
+     */
+    public void setColor(int r, int g, int b) {
+        this.fg = new Color(r, g, b);
+        if (this.gr != null) {
+            this.gr.setColor(this.fg);
+        }
+    }
+
+    /**
+     * Sets the current stroke size.
+     * @param i Size in px.
+     */
+    public abstract void setWeight(int i);
+
+    /**
+     * Clears the image and sets its background.
+     * @param r Red value of color.
+     * @param g Green value of color.
+     * @param b Blue value of color.
+     */
+    public void setBG(int r, int g, int b) {
+        this.bg = new Color(r, g, b);
+        if (this.pyramid != null) {
+            this.pyramid.clear();
+        }
+        if (this.bits != null) {
+            this.bits.clear();
+        } else {
+            this.gr.setBackground(this.bg);
+            this.gr.clearRect(0, 0, this.width, this.height);
+        }
+    }
+
+    /**
+     * Fills a square of the current stroke size with the paint color.
+     * This is safe to call from several threads at once.
+     * @param x X coordinate of the top left corner.
+     * @param y Y coordinate of the top left corner.
+     * @return Whether the top left pixel hadn't been drawn before.
+     */
+    boolean plot(int x, int y) {
+        int x1 = Math.min(x + this.w, this.width), y1 = Math.min(y + this.w, this.height);
+        int c = this.fg.getRGB() & 0xFFFFFF;
+        boolean fresh = false;
+        for (int j = y; j < y1; j ++) {
+            for (int i = x; i < x1; i ++) {
+                boolean f;
+                if (this.bits != null) {
+                    f = this.bits.set(i, j);
+                } else {
+                    f = (this.px[j * this.width + i] & 0xFFFFFF) != c;
+                    this.px[j * this.width + i] = c;
+                }
+
+                if (f && this.pyramid != null) {
+                    this.pyramid.mark(i, j);
+                }
+                fresh |= f && i == x && j == y;
+            }
+        }
+        return fresh;
+    }
+
+    /**
+     * Checks whether every pixel in a rectangle has been drawn already,
+     * ignoring the parts outside the image.
+     * @param x0 Left edge.
+     * @param y0 Top edge.
+     * @param x1 Right edge (inclusive).
+     * @param y1 Bottom edge (inclusive).
+     * @return Whether all of the pixels in the image have been drawn.
+     */
+    boolean covered(int x0, int y0, int x1, int y1) {
+        x0 = Math.max(x0, 0);
+        y0 = Math.max(y0, 0);
+        x1 = Math.min(x1, this.width - 1);
+        y1 = Math.min(y1, this.height - 1);
+        if (this.bits != null) {
+            return x0 > x1 || y0 > y1 || this.bits.allSet(x0, y0, x1, y1);
+        }
+
+        int c = this.fg.getRGB() & 0xFFFFFF;
+        for (int j = y0; j <= y1; j ++) {
+            for (int i = x0; i <= x1; i ++) {
+                if ((this.px[j * this.width + i] & 0xFFFFFF) != c) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Plots a point if it lies inside the image.
+     * @param x X coordinate of the top left corner.
+     * @param y Y coordinate of the top left corner.
+     */
+    private void plotClipped(int x, int y) {
+        if (x >= 0 && y >= 0 && x < this.width && y < this.height) {
+            this.plot(x, y);
+        }
+    }
+
+    /**
+     * Draws the outline of a circle by the midpoint algorithm, with
+     * squares of the current stroke size.
+     * @param cx X coordinate of the center.
+     * @param cy Y coordinate of the center.
+     * @param r Radius in px.
+     */
+    void circle(int cx, int cy, int r) {
+        int o = this.w / 2;
+
+        // Skip circles that miss the image, or are so big that they surround it
+        long dx = Math.max(Math.abs((long) cx - this.hW) - this.hW, 0);
+        long dy = Math.max(Math.abs((long) cy - this.hH) - this.hH, 0);
+        long fx = Math.abs((long) cx - this.hW) + this.hW, fy = Math.abs((long) cy - this.hH) + this.hH;
+        long r2 = (long) r * r, ro = (long) r + this.w, ri = Math.max((long) r - this.w, 0);
+        if (dx * dx + dy * dy > ro * ro || fx * fx + fy * fy < ri * ri) {
+            return;
+        }
+
+        // Huge circles cross the image almost straight, so go along the rows and columns instead
+        if (r > this.width + this.height) {
+            for (int i = 0; i < this.width; i ++) {
+                double d = (double) r2 - (double) (i - cx) * (i - cx);
+                if (d >= 0) {
+                    this.plotClipped(i - o, (int) Math.round(cy + Math.sqrt(d)) - o);
+                    this.plotClipped(i - o, (int) Math.round(cy - Math.sqrt(d)) - o);
+                }
+            }
+            for (int j = 0; j < this.height; j ++) {
+                double d = (double) r2 - (double) (j - cy) * (j - cy);
+                if (d >= 0) {
+                    this.plotClipped((int) Math.round(cx + Math.sqrt(d)) - o, j - o);
+                    this.plotClipped((int) Math.round(cx - Math.sqrt(d)) - o, j - o);
+                }
+            }
+            return;
+        }
+
+        int x = r, y = 0, err = 1 - r;
+        while (x >= y) {
+            // Plot the point in all eight octants
+            for (int k = 0; k < 8; k ++) {
+                int a = (k & 1) == 0 ? x : y, b = (k & 1) == 0 ? y : x;
+                this.plotClipped(cx + ((k & 2) == 0 ? a : -a) - o, cy + ((k & 4) == 0 ? b : -b) - o);
+            }
+
+            y ++;
+            if (err < 0) {
+                err += 2 * y + 1;
+            } else {
+                x --;
+                err += 2 * (y - x) + 1;
+            }
+        }
+    }
+
+    /**
+     * Starts keeping an occupancy pyramid of the image, for estimating
+     * its dimension while it renders. Anything drawn before this isn't counted,
+     * so call it before drawing. The estimate can be read with dimension().
+     */
+    public void enablePyramid() {
+        this.enablePyramid(null);
+    }
+
+    /**
+     * Starts keeping an occupancy pyramid of the image, and hands the current
+     * dimension estimate to a listener each time a snapshot is written.
+     * @param onDimension Listener for the estimates, or null for none.
+     */
+    public void enablePyramid(DoubleConsumer onDimension) {
+        this.pyramid = new OccupancyPyramid(this.width, this.height);
+        this.onDimension = onDimension;
+    }
+
+    /**
+     * Returns the occupancy pyramid, if there is one.
+     * @return Occupancy pyramid, or null.
+     */
+    public OccupancyPyramid pyramid() {
+        return this.pyramid;
+    }
+
+    /**
+     * Estimates the box-counting dimension of what has been drawn so far.
+     * @return Dimension estimate, or NaN if there is no pyramid or too little drawn.
+     */
+    public double dimension() {
+        return this.pyramid == null ? Double.NaN : this.pyramid.dimension();
+    }
+
+    /**
+     * Gives another (usually smaller) renderer the same colors and a
+     * stroke scaled down by a given factor, for previews.
+     * @param ren Renderer to style.
+     * @param factor Downscaling factor.
+     */
+    void copyStyle(Renderer ren, int factor) {
+        ren.setBG(bg.getRed(), bg.getGreen(), bg.getBlue());
+        ren.setColor(fg.getRed(), fg.getGreen(), fg.getBlue());
+        ren.setWeight(Math.max(1, this.w / factor));
+    }
+
+    /**
+     * Copies the image as it currently stands, so it can be
+     * written out while the render carries on.
+     * @return Copy of the image.
+     */
+    public BufferedImage snapshot() {
+        if (this.bits != null) {
+            return this.bits.toImage(this.fg, this.bg);
+        }
+        return new BufferedImage(im.getColorModel(), im.copyData(null), false, null);
+    }
+
+    /**
+     * Starts writing numbered snapshots of the image (name_0000.png, ...)
+     * from a background thread while the render runs.
+     * @param name Prefix of the snapshot files.
+     * @param interval Time between snapshots in ms, or 0 to only write them every few points.
+     */
+    public void startSnapshots(String name, long interval) {
+        stopSnapshots();
+        this.preview = new PreviewWriter(this, name, interval);
+    }
+
+    /**
+     * Also writes a snapshot every time this many more points or circles have been drawn.
+     * @param n Number of points between snapshots, or 0 to turn this off.
+     */
+    public void setSnapshotEvery(long n) {
+        this.snapEvery = n;
+    }
+
+    /**
+     * Stops writing snapshots, waiting for the one in progress to finish.
+     */
+    public void stopSnapshots() {
+        if (this.preview != null) {
+            this.preview.close();
+            this.preview = null;
+        }
+    }
+
+    /**
+     * Asks the snapshot thread for a snapshot, without waiting for it.
+     */
+    void requestSnapshot() {
+        if (this.preview != null) {
+            this.preview.request();
+        }
+    }
+
+    /**
+     * Exports limit set as a .png file with given name.
+     * @param name Name of file.
+     */
+    public void export(String name) {
+        if (this.bits != null) {
+            this.exportBilevel(name);
+        } else {
+            write(this.im, name);
+        }
+    }
+
+    /**
+     * Exports limit set as a 1-bit .png file with given name, which is much smaller
+     * and quicker to write. Only pixels in the current paint color count as foreground.
+     * @param name Name of file.
+     */
+    public void exportBilevel(String name) {
+        File file = new File(name + ".png");
+        if (this.bits != null) {
+            PngWriter.writeBilevel(this.width, this.height, this.fg.getRGB(), this.bg.getRGB(), this.bits::row, file);
+        } else {
+            PngWriter.writeBilevel(this.im, this.fg.getRGB(), this.bg.getRGB(), file);
+        }
+    }
+
+    /**
+     * Exports limit set as a binary .ppm file with given name.
+     * @param name Name of file.
+     */
+    public void exportPPM(String name) {
+        PngWriter.writePPM(this.bits != null ? this.snapshot() : this.im, new File(name + ".ppm"));
+    }
+
+    /**
+     * Exports limit set as a binary grayscale .pgm file with given name.
+     * @param name Name of file.
+     */
+    public void exportPGM(String name) {
+        PngWriter.writePGM(this.bits != null ? this.snapshot() : this.im, new File(name + ".pgm"));
+    }
+
+    /**
+     * Splits the render into shards, to be run as separate processes (or on separate
+     * machines) and merged afterwards with Shards.merge. Every shard must be set up
+     * the same way apart from its index. Setting the index to -1 renders all of the
+     * shards here, which gives exactly the image the merged shards would.
+     * @param shard Index of the shard to render, or -1 for all of them.
+     * @param shards Number of shards.
+     */
+    public void setShard(int shard, int shards) {
+        if (shards < 1 || shard < -1 || shard >= shards) {
+            throw new IllegalArgumentException("Bad shard " + shard + " of " + shards);
+        }
+        this.shard = shard;
+        this.shards = shards;
+    }
+
+    /**
+     * Identifies the job being rendered by hashing everything that decides which
+     * pixels get drawn, so that shards of different jobs aren't merged together.
+     * Renderers extend this with their own settings.
+     * @return Hash of the job's settings.
+     */
+    long job() {
+        long h = hash(0, this.width, this.height, this.size, this.w, this.shards);
+        return hash(h, this.fg.getRGB(), this.bg.getRGB(), this.bits != null ? 1 : 0);
+    }
+
+    /**
+     * Folds some values into a hash.
+     * @param h Hash so far.
+     * @param vs Values to add.
+     * @return New hash.
+     */
+    static long hash(long h, double... vs) {
+        for (double v : vs) {
+            h = hashBits(h, Double.doubleToLongBits(v));
+        }
+        return h;
+    }
+
+    /**
+     * Folds raw bits into a hash, mixing them so that every bit of the input
+     * reaches every bit of the hash (values widened from floats or ints leave
+     * the low bits of their double encoding zero).
+     * @param h Hash so far.
+     * @param v Bits to add.
+     * @return New hash.
+     */
+    static long hashBits(long h, long v) {
+        long z = h * 1000003 + v;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Folds the entries of some matrices into a hash.
+     * @param h Hash so far.
+     * @param ms Matrices to add.
+     * @return New hash.
+     */
+    static long hash(long h, Matrix... ms) {
+        for (Matrix m : ms) {
+            h = hash(h, m.a.x, m.a.y, m.b.x, m.b.y, m.c.x, m.c.y, m.d.x, m.d.y);
+        }
+        return h;
+    }
+
+    /**
+     * Exports the pixels drawn so far as a .shard file with given name, to be merged
+     * with the other shards' files. Only pixels in the current paint color count as drawn.
+     * @param name Name of file.
+     */
+    public void exportShard(String name) {
+        Shards.write(this, new File(name + ".shard"));
+    }
+
+    /**
+     * Writes an image as a .png file with given name.
+     * @param im Image to write.
+     * @param name Name of file.
+     */
+    static void write(BufferedImage im, String name) {
+        PngWriter.writeRGB(im, new File(name + ".png"));
+    }
+}
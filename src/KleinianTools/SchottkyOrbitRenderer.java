@@ -5,24 +5,23 @@ import MathUtils.*;
 import static MathUtils.MoebiusUtils.*;
 
 import java.awt.*;
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
 
 /**
  * A class that describes a Schottky circle drawer
  * using BFS.
  */
-public class SchottkyOrbitRenderer {
-    int width, height, hW, hH;
-    float size, scale;
+public class SchottkyOrbitRenderer extends Renderer {
+    // Widest circle (in px) worth checking for coverage
+    private static final int MAX_FOOTPRINT = 8;
 
     int maxIt;
     SchottkyGenerator gen;
+    WordTable words;
+    long drawn = 0, skipped = 0;
 
-    BufferedImage im;
-    Graphics2D gr;
+    boolean skipCovered, prune;
+    int[] target;
 
     /**
      * Creates a new renderer object with given params.
@@ -33,47 +32,112 @@ public class SchottkyOrbitRenderer {
      * @param gen Generator matrices and circles.
      */
     public SchottkyOrbitRenderer(int width, int height, float size, int maxIter, SchottkyGenerator gen) {
-        this.width = width;
-        this.height = height;
-        this.hW = width / 2;
-        this.hH = height / 2;
+        this(width, height, size, maxIter, gen, false);
+    }
 
+    /**
+     * Creates a new renderer object with given params.
+     * @param width Image width.
+     * @param height Image height.
+     * @param size Display size about minor axis.
+     * @param maxIter Maximum number of iterations.
+     * @param gen Generator matrices and circles.
+     * @param mono Whether to draw into a 1-bit bitmap instead of an RGB image.
+     */
+    public SchottkyOrbitRenderer(int width, int height, float size, int maxIter, SchottkyGenerator gen,
+                                 boolean mono) {
+        super(width, height, size, mono);
         this.maxIt = maxIter;
         this.gen = gen;
-        this.size = size;
-        this.scale = Math.min(this.hW, this.hH) / size;
+    }
+
+    /**
+     * Sets the current stroke size.
+     * @param i Size in px.
+     */
+    @Override
+    public void setWeight(int i) {
+        this.w = i;
+        if (this.gr != null) {
+            this.gr.setStroke(new BasicStroke(i));
+        }
+    }
+
+    /**
+     * Skips circles whose whole disk is already drawn over (or off screen),
+     * since drawing them wouldn't change anything. This matters at depth,
+     * where huge numbers of circles land on the same few pixels.
+     * @param skip Whether to skip covered circles.
+     * @param prune Whether to skip the descendants of covered circles too. These all
+     *              lie inside the circle as long as the circles are those of a Schottky group.
+     */
+    public void setSkipCovered(boolean skip, boolean prune) {
+        this.skipCovered = skip;
+        this.prune = skip && prune;
+        this.target = null;
 
-        im = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        gr = im.createGraphics();
+        // Find the circle each generator maps the outside of its paired circle into,
+        // which is where it sends infinity (a / c)
+        if (this.prune) {
+            int[] target = new int[4];
+            for (int k = 0; k < 4; k ++) {
+                Matrix M = gen.gens[k];
+                Complex z = M.a.div(M.c);
+                target[k] = -1;
+                for (int i = 0; i < gen.circ.length; i ++) {
+                    if (z.sub(gen.circ[i].z).norm() < gen.circ[i].r) target[k] = i;
+                }
+                if (target[k] < 0) return;
+            }
+            this.target = target;
+        }
     }
 
     /**
-     * Sets the current paint color to a given color.
-     * @param r Red value of color.
-     * @param g Green value of color.
-     * @param b Blue value of color.
+     * Returns the number of circles drawn so far.
+     * @return Number of circles drawn.
      */
-    public void setColor(int r, int g, int b) {
-        this.gr.setPaint(new Color(r, g, b));
+    public long circlesDrawn() {
+        return this.drawn;
     }
 
     /**
-     * Sets the current stroke size.
-     * @param i Size in px.
+     * Returns the number of circles skipped so far for being covered,
+     * not counting the descendants of pruned circles.
+     * @return Number of circles skipped.
      */
-    public void setWeight(int i) {
-        this.gr.setStroke(new BasicStroke(i));
+    public long circlesSkipped() {
+        return this.skipped;
     }
 
     /**
-     * Clears the image and sets its background.
-     * @param r Red value of color.
-     * @param g Green value of color.
-     * @param b Blue value of color.
+     * Checks whether the disk of a small circle is all drawn over already.
+     * @param c Circle object.
+     * @return Whether the circle is covered (false for big circles, which aren't checked).
      */
-    public void setBG(int r, int g, int b) {
-        this.gr.setBackground(new Color(r, g, b));
-        this.gr.clearRect(0, 0, this.width, this.height);
+    private boolean covered(Circle c) {
+        float r = c.r * this.scale;
+        if (2 * r + this.w > MAX_FOOTPRINT) return false;
+
+        // The box has to hold the disk itself, not just the circle as drawn (whose
+        // center and radius are rounded), as that's where the descendants lie.
+        // A stroke square plotted at p covers p - o to p - o + w - 1.
+        float x = c.z.x * this.scale + this.hW, y = c.z.y * this.scale + this.hH;
+        int o = this.w / 2;
+        return this.covered((int) Math.floor(x - r) - o, (int) Math.floor(y - r) - o,
+                (int) Math.floor(x + r) + (this.w - 1 - o), (int) Math.floor(y + r) + (this.w - 1 - o));
+    }
+
+    /**
+     * Identifies the job, including the group, the depth, where the tree is
+     * split between shards and how circles are drawn.
+     * @return Hash of the job's settings.
+     */
+    @Override
+    long job() {
+        long h = hash(super.job(), gen.gens);
+        for (Circle c : gen.circ) h = hash(h, c.z.x, c.z.y, c.r);
+        return hash(h, this.maxIt, this.prefix(), this.bits != null || this.pyramid != null ? 1 : 0);
     }
 
     /**
@@ -81,24 +145,125 @@ public class SchottkyOrbitRenderer {
      * @param c Circle object.
      */
     private void drawCircle(Circle c) {
+        if (this.skipCovered && this.covered(c)) {
+            skipped ++;
+            return;
+        }
+
         // Draw a circle
         int s = (int) (c.r * this.scale);
         int nX = (int) (c.z.x * this.scale + this.hW);
         int nY = (int) (c.z.y * this.scale + this.hH);
-        gr.drawOval(nX - s, nY - s, 2 * s, 2 *  s);
+        // Draw it ourselves when keeping a pyramid, so that every pixel is counted
+        if (this.bits != null || this.pyramid != null) {
+            this.circle(nX, nY, s);
+        } else {
+            gr.drawOval(nX - s, nY - s, 2 * s, 2 *  s);
+        }
+
+        drawn ++;
+        if (snapEvery > 0 && drawn % snapEvery == 0) {
+            this.requestSnapshot();
+        }
+    }
+
+    /**
+     * Uses precomputed word products (e.g. from a RecipeCache) for the
+     * top of the tree instead of multiplying them out again.
+     * @param words Word table built from this renderer's generators.
+     */
+    public void setWordTable(WordTable words) {
+        this.words = words;
+    }
+
+    /**
+     * Works out the length of the words calc() draws the tree from, which is also
+     * where it is split between shards.
+     * @return Length of the words, or 0 if drawing straight from the generators.
+     */
+    private int prefix() {
+        int depth = this.words == null ? 0 : this.words.depth;
+
+        // There are 4 * 3^(p - 1) words of length p to share out, and
+        // four or more per shard keeps the shards roughly even
+        if (this.shards > 1) {
+            int need = 1;
+            while (need <= maxIt && 4 * Math.pow(3, need - 1) < 4 * this.shards) need ++;
+            depth = Math.max(depth, need);
+        }
+        return Math.min(depth, maxIt + 1);
     }
 
     /**
      * Starts the calculation process, and initializes the recursive drawing process.
+     * When rendering one shard, only the subtrees under that shard's share of the
+     * shortest words with at least four per shard are drawn.
      */
     public void calc() {
+        if (this.shard <= 0) {
+            for (Circle c : gen.circ) {
+                drawCircle(c);
+            }
+        }
+
+        int p = this.prefix();
+        if (p == 0) {
+            for (int j = 0; j < 4; j ++) {
+                bfs(gen.gens[j], j, maxIt);
+            }
+            return;
+        }
+
+        // Draw the tabulated words, and carry on from the longest of them
+        WordTable words = this.words != null && this.words.depth >= p ? this.words : WordTable.build(gen, p);
+        for (int i = 0; i < words.starts[p]; i ++) {
+            if (i < words.starts[p - 1]) {
+                if (this.shard > 0) continue;
+                for (Circle c : gen.circ) {
+                    drawCircle(moebiusCirc(words.words[i], c));
+                }
+            } else if (this.shard < 0 || (i - words.starts[p - 1]) % this.shards == this.shard) {
+                bfs(words.words[i], words.last[i], maxIt - (p - 1));
+            }
+        }
+    }
+
+    /**
+     * Draws the circles one level at a time, for (roughly) a given amount of time,
+     * so that whatever is finished when time runs out covers the whole limit set.
+     * @param millis Time budget in ms.
+     * @return The best image available when time ran out.
+     */
+    public BufferedImage calcFor(long millis) {
+        long deadline = System.nanoTime() + millis * 1000000L;
         for (Circle c : gen.circ) {
             drawCircle(c);
         }
 
-        for (int j = 0; j < 4; j ++) {
-            bfs(gen.gens[j], j, maxIt);
+        boolean done = false;
+        for (int i = 0; i <= maxIt && !done; i ++) {
+            for (int j = 0; j < 4 && !done; j ++) {
+                done = !level(gen.gens[j], j, i, deadline);
+            }
+            this.requestSnapshot();
         }
+        return this.snapshot();
+    }
+
+    /**
+     * Quickly draws a downscaled version of the circles down to a
+     * shallow depth, to check the framing before a long render.
+     * @param name Name of file.
+     * @param factor Factor to shrink the image by.
+     * @param depth Number of iterations to draw.
+     */
+    public void preview(String name, int factor, int depth) {
+        SchottkyOrbitRenderer ren = new SchottkyOrbitRenderer(width / factor, height / factor,
+                size, Math.min(depth, maxIt), gen, bits != null);
+        this.copyStyle(ren, factor);
+
+        ren.calc();
+        ren.export(name);
     }
 
     /**
@@ -109,30 +274,43 @@ public class SchottkyOrbitRenderer {
      * @param i Number of iterations remaining until the process terminates.
      */
     private void bfs(Matrix M, int j, int i) {
-        Circle nCirc;
-        for (Circle c : gen.circ) {
-            nCirc = moebiusCirc(M, c);
-            drawCircle(nCirc);
+        Circle[] nCirc = new Circle[gen.circ.length];
+        for (int c = 0; c < nCirc.length; c ++) {
+            nCirc[c] = moebiusCirc(M, gen.circ[c]);
+            drawCircle(nCirc[c]);
         }
 
         if (i == 0) return;
         for (int k = 0; k < 4; k ++) {
-            if (k != (j + 2) % 4) {
+            // Everything below the next node lies inside one of this node's circles
+            if (k != (j + 2) % 4 && !(this.target != null && this.covered(nCirc[this.target[k]]))) {
                 bfs(M.mul(gen.gens[k]), k, i - 1);
             }
         }
     }
 
     /**
-     * Exports limit set as a .png file with given name.
-     * @param name Name of file.
+     * Like bfs, but only draws the circles exactly i levels down,
+     * since the ones above have been drawn already.
+     * @param M Current matrix.
+     * @param j Index of the last matrix.
+     * @param i Number of levels left to descend.
+     * @param deadline Time (from System.nanoTime) to give up at.
+     * @return Whether the level was finished in time.
      */
-    public void export(String name) {
-        File file = new File(name + ".png");
-        try {
-            ImageIO.write(this.im, "png", file);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    private boolean level(Matrix M, int j, int i, long deadline) {
+        if (i == 0) {
+            for (Circle c : gen.circ) {
+                drawCircle(moebiusCirc(M, c));
+            }
+            return System.nanoTime() < deadline;
+        }
+
+        for (int k = 0; k < 4; k ++) {
+            if (k != (j + 2) % 4 && !level(M.mul(gen.gens[k]), k, i - 1, deadline)) {
+                return false;
+            }
         }
+        return true;
     }
 }
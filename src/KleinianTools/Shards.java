@@ -0,0 +1,194 @@
+package KleinianTools;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes, merges and launches the shards of a render split between several processes.
+ * Each shard writes the pixels it drew to a file of its own, and since a pixel is drawn
+ * in the merged image if any shard drew it, merging is a streaming OR of the files.
+ *
+ * A shard file is big-endian, and made of a header followed by a 1-bit raster:
+ * <pre>
+ * int    magic ("KSHD")
+ * int    version
+ * int    width
+ * int    height
+ * int    shard       index of this shard
+ * int    shards      number of shards
+ * long   job         hash of the job's settings, which every shard must share
+ * int    fg          foreground color, as 0xRRGGBB
+ * int    bg          background color, as 0xRRGGBB
+ *
+ * then for each row:
+ * long   bits[(width + 63) / 64]   leftmost pixel in the most significant bit
+ * </pre>
+ */
+public final class Shards {
+    static final int MAGIC = 0x4B534844;
+    static final int VERSION = 2;
+    private static final int BUFFER = 1 << 16;
+
+    private Shards() {}
+
+    /**
+     * Writes the pixels a renderer has drawn so far as a shard file.
+     * @param ren Renderer to write.
+     * @param file File to write to.
+     */
+    static void write(Renderer ren, File file) {
+        int stride = (ren.width + 63) >> 6, fg = ren.fg.getRGB() & 0xFFFFFF;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(ren.width);
+            out.writeInt(ren.height);
+            out.writeInt(ren.shard);
+            out.writeInt(ren.shards);
+            out.writeLong(ren.job());
+            out.writeInt(fg);
+            out.writeInt(ren.bg.getRGB() & 0xFFFFFF);
+
+            for (int y = 0; y < ren.height; y ++) {
+                for (int k = 0; k < stride; k ++) {
+                    if (ren.bits != null) {
+                        out.writeLong(ren.bits.bits[y * stride + k]);
+                        continue;
+                    }
+
+                    // Pack the pixels in the paint color from the image
+                    long l = 0;
+                    for (int x = k << 6; x < Math.min((k + 1) << 6, ren.width); x ++) {
+                        if ((ren.px[y * ren.width + x] & 0xFFFFFF) == fg) {
+                            l |= Long.MIN_VALUE >>> (x & 63);
+                        }
+                    }
+                    out.writeLong(l);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Merges shard files into a 1-bit .png file, reading them all a row at a time,
+     * so only the merged raster is ever held in memory. The shard files must all
+     * come from the same job, and between them cover every shard.
+     * @param name Name of the merged file.
+     * @param shards Names of the shard files, without the .shard extension.
+     */
+    public static void merge(String name, String... shards) {
+        if (shards.length == 0) {
+            throw new IllegalArgumentException("No shards to merge");
+        }
+
+        List<DataInputStream> ins = new ArrayList<>();
+        try {
+            int[] head = null;
+            long job = 0;
+            boolean[] seen = null;
+            for (String s : shards) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(s + ".shard"), BUFFER));
+                ins.add(in);
+
+                // Header fields other than the job, in file order
+                int[] h = new int[8];
+                for (int i = 0; i < 6; i ++) h[i] = in.readInt();
+                if (h[0] != MAGIC || h[1] != VERSION) {
+                    throw new IOException(s + ".shard is not a shard file");
+                }
+                long j = in.readLong();
+                h[6] = in.readInt();
+                h[7] = in.readInt();
+
+                if (h[5] < 1 || h[4] < -1 || h[4] >= h[5]) {
+                    throw new IOException(s + ".shard has a bad shard index " + h[4] + " of " + h[5]);
+                }
+                if (head == null) {
+                    head = h;
+                    job = j;
+                    seen = new boolean[h[5]];
+                } else if (j != job || h[2] != head[2] || h[3] != head[3] || h[5] != head[5]
+                        || h[6] != head[6] || h[7] != head[7]) {
+                    throw new IOException(s + ".shard is from a different job");
+                }
+
+                // A shard of -1 holds all of them by itself
+                if (h[4] < 0) {
+                    Arrays.fill(seen, true);
+                } else {
+                    seen[h[4]] = true;
+                }
+            }
+
+            for (int i = 0; i < seen.length; i ++) {
+                if (!seen[i]) throw new IOException("Shard " + i + " of " + seen.length + " is missing");
+            }
+
+            // OR the shards together
+            Bitmap bits = new Bitmap(head[2], head[3]);
+            for (int i = 0; i < bits.bits.length; i ++) {
+                long l = 0;
+                for (DataInputStream in : ins) l |= in.readLong();
+                bits.bits[i] = l;
+            }
+
+            PngWriter.writeBilevel(bits.width, bits.height, head[6], head[7], bits::row, new File(name + ".png"));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            for (DataInputStream in : ins) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /**
+     * Runs every shard of a job as a separate local process, and waits for them all
+     * to finish. Each process runs a given main class, with the given arguments
+     * followed by its shard index and the number of shards.
+     * @param main Class whose main method renders one shard.
+     * @param shards Number of shards.
+     * @param args Arguments to pass before the shard index.
+     */
+    public static void launch(Class<?> main, int shards, String... args) {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<Process> procs = new ArrayList<>();
+        try {
+            for (int i = 0; i < shards; i ++) {
+                List<String> cmd = new ArrayList<>(List.of(java, "-cp", System.getProperty("java.class.path"), main.getName()));
+                cmd.addAll(List.of(args));
+                cmd.add(Integer.toString(i));
+                cmd.add(Integer.toString(shards));
+                procs.add(new ProcessBuilder(cmd).inheritIO().start());
+            }
+
+            for (int i = 0; i < shards; i ++) {
+                int code = procs.get(i).waitFor();
+                if (code != 0) {
+                    throw new IOException("Shard " + i + " exited with code " + code);
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            for (Process p : procs) p.destroy();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Merges shard files from the command line.
+     * @param args Name of the merged file, then the names of the shard files.
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: Shards <output> <shard> [<shard> ...]");
+            System.exit(1);
+        }
+        merge(args[0], Arrays.copyOfRange(args, 1, args.length));
+    }
+}
@@ -0,0 +1,90 @@
+package KleinianTools;
+
+import MathUtils.Matrix;
+
+/**
+ * A table of the products of all reduced words in a group's generators
+ * up to a given length, in order of length (so breadth-first).
+ */
+public class WordTable {
+    Matrix[] words;
+    byte[] last;
+    int[] starts;
+    int depth;
+
+    /**
+     * Creates a word table from already computed products.
+     * @param words Word products, ordered by length.
+     * @param last Index of the last generator in each word.
+     * @param depth Length of the longest words.
+     */
+    WordTable(Matrix[] words, byte[] last, int depth) {
+        this.words = words;
+        this.last = last;
+        this.depth = depth;
+
+        // There are 4 * 3^(n - 1) reduced words of length n
+        this.starts = new int[depth + 1];
+        for (int n = 1, c = 4; n <= depth; n ++, c *= 3) {
+            this.starts[n] = this.starts[n - 1] + c;
+        }
+    }
+
+    /**
+     * Multiplies out every reduced word (one that never follows a
+     * generator by its inverse) up to a given length.
+     * @param gen Generators of the group.
+     * @param depth Length of the longest words.
+     * @return Table of the word products.
+     */
+    public static WordTable build(Generator gen, int depth) {
+        int n = depth == 0 ? 0 : (int) (2 * Math.pow(3, depth) - 2);
+        Matrix[] words = new Matrix[n];
+        byte[] last = new byte[n];
+
+        int k = 0;
+        for (int j = 0; j < 4 && k < n; j ++, k ++) {
+            words[k] = gen.gens[j];
+            last[k] = (byte) j;
+        }
+
+        // Extend each word by every generator but its last one's inverse
+        for (int i = 0; k < n; i ++) {
+            for (int j = 0; j < 4; j ++) {
+                if (j != (last[i] + 2) % 4) {
+                    words[k] = words[i].mul(gen.gens[j]);
+                    last[k ++] = (byte) j;
+                }
+            }
+        }
+        return new WordTable(words, last, depth);
+    }
+
+    /**
+     * Returns the number of words in this table.
+     * @return Number of words.
+     */
+    public int size() {
+        return this.words.length;
+    }
+
+    /**
+     * Returns the product of a given word.
+     * @param i Index of the word.
+     * @return Word product.
+     */
+    public Matrix word(int i) {
+        return this.words[i];
+    }
+
+    /**
+     * Returns the length of a given word.
+     * @param i Index of the word.
+     * @return Length of the word.
+     */
+    public int length(int i) {
+        int n = 1;
+        while (this.starts[n] <= i) n ++;
+        return n;
+    }
+}
@@ -4,12 +4,32 @@ import MathUtils.Complex;
 
 public class Main {
     public static void main(String[] args) {
+        // "local K" renders in K processes and merges them, "shard i K" renders one of them
+        if (args.length == 2 && args[0].equals("local")) {
+            int k = Integer.parseInt(args[1]);
+            Shards.launch(Main.class, k, "shard");
+
+            String[] names = new String[k];
+            for (int i = 0; i < k; i ++) names[i] = "jorgenson_" + i;
+            Shards.merge("jorgenson", names);
+            return;
+        }
+
         KleinianRendererIFS ren = new KleinianRendererIFS(5000, 3000, 1.2f, Recipes.jorgensenRecipe(new Complex(1.87f, 0.1f), new Complex(1.87f, -0.1f), 1));
         ren.setBG(7,7,7);
         ren.setColor(255,255,255);
         ren.setWeight(1);
 
+        if (args.length == 3 && args[0].equals("shard")) {
+            int i = Integer.parseInt(args[1]);
+            ren.setSeed(1);
+            ren.setShard(i, Integer.parseInt(args[2]));
+            ren.calculate(150000000L);
+            ren.exportShard("jorgenson_" + i);
+            return;
+        }
+
         ren.calculate(150000000L);
         ren.export("jorgenson");
     }
-}
\ No newline at end of file
+}